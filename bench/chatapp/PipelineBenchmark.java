@@ -0,0 +1,117 @@
+package chatapp;
+
+import chatapp.client.ChatSession;
+import chatapp.client.Receipt;
+import chatapp.server.Server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Times N control requests sent one round trip at a time against the same N pipelined by request ID.
+ *
+ * Starts a server on a free local port in this JVM, then for each protocol sends "/nick" requests
+ * both ways and prints the time taken and the speedup. Fails if pipelining is not faster.
+ * The server's log is discarded while it runs.
+ * Run with e.g. java -cp out chatapp.PipelineBenchmark 10000
+ * @author Zicheng Gao
+ */
+public class PipelineBenchmark {
+    private static final int DEFAULT_REQUESTS = 10000;
+    private static final int WARMUP_ROUNDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_REQUESTS;
+
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {}
+        }));
+
+        int port = freePort();
+        Thread server = new Thread(() -> Server.main(new String[]{"-port", Integer.toString(port)}), "Server");
+        server.setDaemon(true);
+        server.start();
+
+        out.println("Requests: " + requests);
+        for (boolean binary : new boolean[]{true, false}) {
+            ChatSession session = connect(port, binary);
+            for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                serialized(session, requests);
+                pipelined(session, requests);
+            }
+
+            long serialized = serialized(session, requests);
+            long pipelined = pipelined(session, requests);
+            out.println((binary ? "Binary" : "Text") + " protocol:");
+            out.println("  serialized: " + millis(serialized) + " ms, " + perRequest(serialized, requests) + " us/request");
+            out.println("  pipelined:  " + millis(pipelined) + " ms, " + perRequest(pipelined, requests) + " us/request");
+            out.println(String.format("  speedup:    %.1fx", (double) serialized / pipelined));
+            session.disconnect();
+
+            // Not waiting on each round trip is the whole point of request IDs
+            if (pipelined >= serialized)
+                throw new IllegalStateException("Pipelined requests were no faster than serialized ones over the "
+                        + (binary ? "binary" : "text") + " protocol.");
+        }
+        out.println("Pipelining is faster over both protocols.");
+    }
+
+    // Wait for each receipt before sending the next request
+    private static long serialized(ChatSession session, int requests) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++)
+            check(session.nick("Serial" + i).get());
+        return System.nanoTime() - start;
+    }
+
+    // Send every request, then wait for all the receipts
+    private static long pipelined(ChatSession session, int requests) throws Exception {
+        long start = System.nanoTime();
+        CompletableFuture<?>[] receipts = new CompletableFuture<?>[requests];
+        for (int i = 0; i < requests; i++)
+            receipts[i] = session.nick("Pipelined" + i);
+        CompletableFuture.allOf(receipts).get();
+        long elapsed = System.nanoTime() - start;
+        for (CompletableFuture<?> receipt : receipts)
+            check((Receipt) receipt.get());
+        return elapsed;
+    }
+
+    private static void check(Receipt receipt) {
+        if (!receipt.isOk())
+            throw new IllegalStateException("Request refused: " + receipt);
+    }
+
+    // The server starts on another thread, so retry until it is accepting
+    private static ChatSession connect(int port, boolean binary) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return ChatSession.open("localhost", port, binary, (session, text) -> {});
+            } catch (IOException e) {
+                if (attempt == 50)
+                    throw e;
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static long millis(long nanos) {
+        return nanos / 1000000;
+    }
+
+    private static String perRequest(long nanos, int requests) {
+        return String.format("%.1f", nanos / 1000.0 / requests);
+    }
+
+}
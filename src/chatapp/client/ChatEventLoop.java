@@ -0,0 +1,125 @@
+package chatapp.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One thread serving the sockets of any number of {@link ChatSession}s.
+ * All socket I/O of a session happens on its loop's thread, as do its listener callbacks.
+ * Sessions may share {@link #shared()}, so one JVM can host thousands of them on a single thread.
+ * @author Zicheng Gao
+ */
+public class ChatEventLoop implements Closeable {
+    private static ChatEventLoop shared;
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks;
+    private final Thread thread;
+    private volatile boolean running;
+
+    public ChatEventLoop() throws IOException {
+        selector = Selector.open();
+        tasks = new ConcurrentLinkedQueue<>();
+        running = true;
+        thread = new Thread(this::run, "ChatEventLoop");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return the loop shared by sessions that are not given one of their own
+     * @throws IOException if the loop could not be created
+     */
+    public static synchronized ChatEventLoop shared() throws IOException {
+        if (shared == null || !shared.running)
+            shared = new ChatEventLoop();
+        return shared;
+    }
+
+    /**
+     * Run a task on the loop thread.
+     * @param task task to run
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread)
+            selector.wakeup();
+    }
+
+    // Start serving a connected, non-blocking channel
+    void register(ChatSession session, SocketChannel channel) {
+        execute(() -> {
+            try {
+                session.setKey(channel.register(selector, SelectionKey.OP_READ, session));
+            } catch (IOException e) {
+                session.close(e);
+            }
+        });
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                System.err.println("The event loop could not wait for socket events.");
+                break;
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (CancelledKeyException e) {
+                    // closed before the task ran - nothing left to do
+                } catch (RuntimeException e) {
+                    // tasks call listeners too, and one that throws must not stop the loop
+                    e.printStackTrace();
+                }
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                ChatSession session = (ChatSession) key.attachment();
+                try {
+                    if (key.isValid() && key.isWritable())
+                        session.flush();
+                    if (key.isValid() && key.isReadable())
+                        session.receive();
+                } catch (CancelledKeyException e) {
+                    // closed while being served - nothing left to do
+                } catch (RuntimeException e) {
+                    // a misbehaving listener must not take down every other session
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        try {
+            for (SelectionKey key : selector.keys())
+                ((ChatSession) key.attachment()).close(null);
+            selector.close();
+        } catch (IOException e) {
+            System.err.println("An error occurred while closing the event loop.");
+        }
+    }
+
+    /**
+     * Stop the loop, closing every session on it.
+     */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+}
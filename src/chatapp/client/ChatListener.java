@@ -0,0 +1,32 @@
+package chatapp.client;
+
+import java.io.IOException;
+
+/**
+ * Receives events from a {@link ChatSession}.
+ * Callbacks run on the session's {@link ChatEventLoop} thread, so they should return quickly.
+ * @author Zicheng Gao
+ */
+public interface ChatListener {
+
+    /**
+     * Text for display arrived: chat relayed from a correspondent, or a server message.
+     * @param session session it arrived on
+     * @param text the text, without any header or terminator
+     */
+    void onMessage(ChatSession session, String text);
+
+    /**
+     * A new chat started, by our request or by someone else's while we were listening.
+     * @param session session the chat is on
+     */
+    default void onChatStarted(ChatSession session) {}
+
+    /**
+     * The session closed.
+     * @param session session that closed
+     * @param cause the error that closed it, or null if it was closed on purpose
+     */
+    default void onDisconnected(ChatSession session, IOException cause) {}
+
+}
@@ -91,25 +91,10 @@ public class ChatPanel extends JPanel {
                 if (msg.length() < 1)
                     return;
 
-                // Even if we change the terminator, the server won't know about the new one until post-change
-                // So we need to send the message that changes the terminator with the old one
-                String oldTerminator = client.getTerminator();
+                // The client takes care of control messages, including terminator changes
+                client.send(msg);
 
-                String[] args = msg.split(" ");
-
-                // nick change goes into chatapp.client.pendingChanges for server confirmation
-                if (args[0].equals("/nick") && args.length > 1) {
-                    String newName = msg.substring(args[0].length() + 1); // nick only
-                    client.getPendingChanges().put("nick", new String[]{newName});
-                } else if (args[0].equals("/delimit") && args.length > 1) {
-                    String newTerminator = msg.substring(args[0].length() + 1); // We included the / here
-                    client.setTerminator(newTerminator);
-                } else if (args[0].equals("/msg") && args.length > 1)
-                    client.getPendingChanges().put("msg", null);
-
-                client.send(msg + oldTerminator);
-
-                if (args[0].charAt(0) != '/')
+                if (msg.charAt(0) != '/')
                     write(client.getUsername() + ": " + msg);
 
                 entry.setText("");
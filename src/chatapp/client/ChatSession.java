@@ -0,0 +1,473 @@
+package chatapp.client;
+
+import chatapp.protocol.Frame;
+import chatapp.protocol.Protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A headless connection to a chat server, for the Swing {@link Client} as well as bots and integrations.
+ *
+ * Nothing here blocks once the session is open: control messages return a future completed by their receipt,
+ * chat returns a future completed once written, and incoming text is handed to a {@link ChatListener}.
+ * Every control message carries a request ID, so any number of them may be in flight at once.
+ * @author Zicheng Gao
+ */
+public class ChatSession {
+    // How long to wait for the server to answer protocol negotiation
+    private static final int NEGOTIATION_TIMEOUT = 5000;
+
+    // Read buffers start small and grow up to a whole frame only when one arrives
+    private static final int INITIAL_BUFFER = 1024;
+
+    private final SocketChannel channel;
+    private final ChatEventLoop loop;
+    private final ChatListener listener;
+    private final int protocolVersion;
+    private SelectionKey key;
+
+    private volatile String terminator;
+    private volatile String username;
+    // Whether a chat started by someone else should be reported by onChatStarted
+    private volatile boolean listening;
+    private volatile boolean connected;
+
+    // Request ID -> request awaiting its receipt
+    private final Map<String, PendingRequest> pendingRequests;
+    private final AtomicInteger nextRequestId;
+
+    // Loop thread only
+    private final ArrayDeque<PendingWrite> outbound;
+    private ByteBuffer readBuffer;
+    // Text protocol only
+    private CharsetDecoder decoder;
+    private CharBuffer charBuffer;
+    private StringBuilder textBuffer;
+    // What the server ends its messages with, which changes only as it answers a /delimit
+    private String inboundTerminator;
+    // Receipt ID header and new terminator of each /delimit sent but not yet answered, in order sent
+    private final ConcurrentLinkedQueue<String[]> pendingDelimits;
+
+    private ChatSession(SocketChannel channel, int protocolVersion, ChatEventLoop loop, ChatListener listener) {
+        this.channel = channel;
+        this.protocolVersion = protocolVersion;
+        this.loop = loop;
+        this.listener = listener;
+        terminator = "\n";
+        username = "UNNAMED_GUEST";
+        listening = true;
+        connected = true;
+        pendingRequests = new ConcurrentHashMap<>(8);
+        nextRequestId = new AtomicInteger();
+        outbound = new ArrayDeque<>(4);
+        readBuffer = ByteBuffer.allocate(INITIAL_BUFFER);
+        inboundTerminator = terminator;
+        pendingDelimits = new ConcurrentLinkedQueue<>();
+        if (protocolVersion != Protocol.BINARY) {
+            // the server reads and writes text in the platform charset
+            decoder = Charset.defaultCharset().newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            charBuffer = CharBuffer.allocate(INITIAL_BUFFER);
+            textBuffer = new StringBuilder(64);
+        }
+    }
+
+    /**
+     * Open a session on the shared event loop.
+     * @see #open(String, int, boolean, ChatEventLoop, ChatListener)
+     */
+    public static ChatSession open(String hostname, int port, boolean binary, ChatListener listener)
+            throws IOException {
+        return open(hostname, port, binary, ChatEventLoop.shared(), listener);
+    }
+
+    /**
+     * Connect to a server and start receiving on the given loop.
+     * Connection and protocol negotiation happen on the calling thread.
+     * @param hostname server host
+     * @param port server port
+     * @param binary whether to negotiate the binary protocol, rather than speak the legacy text protocol
+     * @param loop event loop to serve the session
+     * @param listener receiver of incoming text and session events
+     * @return the open session
+     * @throws UnknownHostException if the host cannot be resolved
+     * @throws ProtocolException if the server refuses the binary protocol
+     * @throws IOException if the connection fails
+     */
+    public static ChatSession open(String hostname, int port, boolean binary, ChatEventLoop loop,
+                                   ChatListener listener) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(hostname, port);
+        if (address.isUnresolved())
+            throw new UnknownHostException(hostname);
+
+        SocketChannel channel = SocketChannel.open(address);
+        try {
+            int version = binary ? negotiate(channel) : Protocol.TEXT;
+            channel.configureBlocking(false);
+            ChatSession session = new ChatSession(channel, version, loop, listener);
+            loop.register(session, channel);
+            return session;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Offer the binary protocol and wait for the server to accept it
+    private static int negotiate(SocketChannel channel) throws IOException {
+        channel.write(ByteBuffer.wrap(new byte[]{(byte) Protocol.MAGIC, (byte) Protocol.VERSION}));
+
+        // Reading through the socket's stream is what lets the timeout apply
+        channel.socket().setSoTimeout(NEGOTIATION_TIMEOUT);
+        InputStream in = channel.socket().getInputStream();
+        try {
+            if (in.read() != Protocol.MAGIC)
+                throw new ProtocolException("The server does not support the binary protocol.");
+            int version = in.read();
+            if (version < 0)
+                throw new EOFException();
+            return version;
+        } catch (SocketTimeoutException e) {
+            throw new ProtocolException("The server did not answer protocol negotiation.");
+        } finally {
+            channel.socket().setSoTimeout(0);
+        }
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    public String getTerminator() {
+        return terminator;
+    }
+
+    /**
+     * @return our name, as last confirmed by the server
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Send chat to our correspondent.
+     * @param text chat text, without terminator
+     * @return future completed once the text is written to the socket
+     */
+    public CompletableFuture<Void> send(String text) {
+        CompletableFuture<Void> written = new CompletableFuture<>();
+        try {
+            synchronized (this) {
+                enqueue(protocolVersion == Protocol.BINARY ? Frame.chat(text).toBytes() : encode(text + terminator),
+                        written);
+            }
+        } catch (IOException e) {
+            written.completeExceptionally(e);
+        }
+        return written;
+    }
+
+    public CompletableFuture<Receipt> nick(String name) {
+        return control("/nick " + name);
+    }
+
+    /**
+     * @param target user to chat with, or "Listener" to end the current chat
+     */
+    public CompletableFuture<Receipt> msg(String target) {
+        return control("/msg " + target);
+    }
+
+    public CompletableFuture<Receipt> delimit(String newTerminator) {
+        return control("/delimit " + newTerminator);
+    }
+
+    public CompletableFuture<Receipt> quit() {
+        return control("/quit");
+    }
+
+    /**
+     * Send a control message.
+     * @param command control message, e.g. "/nick Name1"
+     * @return future completed by the server's receipt, whether "OK" or "NO".
+     *  Fails if the session closes first.
+     */
+    public CompletableFuture<Receipt> control(String command) {
+        CompletableFuture<Receipt> receipt = new CompletableFuture<>();
+        String requestId = Protocol.REQUEST_ID_HEAD + nextRequestId.incrementAndGet();
+        // Keep the argument whole - names may contain spaces
+        String[] args = command.substring(1).split(" ", 2);
+        pendingRequests.put(requestId, new PendingRequest(args, receipt));
+        // close() marks the session closed before failing what is pending, so a request it missed is caught here
+        if (!connected) {
+            pendingRequests.remove(requestId);
+            receipt.completeExceptionally(new IOException("Session is closed."));
+            return receipt;
+        }
+
+        try {
+            // Requests go out in the order terminators change
+            synchronized (this) {
+                byte[] bytes = protocolVersion == Protocol.BINARY ? Frame.control(requestId, command).toBytes() :
+                        encode(requestId + Protocol.END_OF_HEADER + command + terminator);
+
+                // Even if we change the terminator, the server won't know about the new one until post-change
+                // So the message that changes the terminator is sent with the old one
+                // Only when the server will accept it - it needs a word after the command, split by spaces,
+                // so "/delimit " leaves the terminator as it was
+                if (args[0].equals("delimit") && command.split(" ").length > 1) {
+                    terminator = args[1];
+                    // Replies already on their way still end with the old one
+                    if (protocolVersion != Protocol.BINARY)
+                        pendingDelimits.add(new String[]{requestId + Protocol.CONTROL_DELIMITER, args[1]});
+                }
+
+                enqueue(bytes, null);
+            }
+        } catch (IOException e) {
+            pendingRequests.remove(requestId);
+            receipt.completeExceptionally(e);
+        }
+        return receipt;
+    }
+
+    /**
+     * Close the session. Requests still in flight fail.
+     */
+    public void disconnect() {
+        loop.execute(() -> close(null));
+    }
+
+    private byte[] encode(String text) {
+        return text.getBytes(Charset.defaultCharset());
+    }
+
+    private void enqueue(byte[] bytes, CompletableFuture<Void> written) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        loop.execute(() -> {
+            if (!connected) {
+                if (written != null)
+                    written.completeExceptionally(new IOException("Session is closed."));
+                return;
+            }
+            outbound.add(new PendingWrite(buffer, written));
+            flush();
+        });
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+        if (!outbound.isEmpty())
+            flush();
+    }
+
+    // Write as much as the socket takes, and ask to be told when it takes more
+    void flush() {
+        if (key == null)
+            return;
+        try {
+            while (!outbound.isEmpty()) {
+                PendingWrite write = outbound.peek();
+                channel.write(write.buffer);
+                if (write.buffer.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                outbound.poll();
+                if (write.written != null)
+                    write.written.complete(null);
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            close(e);
+        }
+    }
+
+    void receive() {
+        try {
+            int n = channel.read(readBuffer);
+            if (n < 0) {
+                close(new EOFException("The server closed the connection."));
+                return;
+            }
+
+            readBuffer.flip();
+            if (protocolVersion == Protocol.BINARY)
+                receiveFrames();
+            else
+                receiveText();
+            readBuffer.compact();
+
+            // A frame bigger than the buffer is on its way
+            if (!readBuffer.hasRemaining() && readBuffer.capacity() < Protocol.MAX_FRAME_LENGTH + 5) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2,
+                        Protocol.MAX_FRAME_LENGTH + 5));
+                readBuffer.flip();
+                larger.put(readBuffer);
+                readBuffer = larger;
+            }
+        } catch (IOException e) {
+            close(e);
+        }
+    }
+
+    private void receiveFrames() throws IOException {
+        Frame frame;
+        while (connected && (frame = Frame.read(readBuffer)) != null) {
+            if (frame.getOpcode() == Protocol.RECEIPT)
+                processReceipt(frame.getHeader(), frame.getText());
+            else
+                listener.onMessage(this, frame.getText());
+        }
+    }
+
+    private void receiveText() throws IOException {
+        // Decode what we can. A partial character stays in the byte buffer for next time.
+        CoderResult result;
+        do {
+            result = decoder.decode(readBuffer, charBuffer, false);
+            charBuffer.flip();
+            textBuffer.append(charBuffer);
+            charBuffer.clear();
+        } while (result.isOverflow());
+
+        // server sends with terminator of recipient
+        while (connected) {
+            // The server changes terminator before answering /delimit, so its receipt is the first to end with the new one
+            String[] delimit = pendingDelimits.peek();
+            if (delimit != null) {
+                if (textBuffer.length() < delimit[0].length() && delimit[0].startsWith(textBuffer.toString()))
+                    break; // can't tell yet whether this is the receipt
+                if (textBuffer.indexOf(delimit[0]) == 0) {
+                    pendingDelimits.poll();
+                    inboundTerminator = delimit[1];
+                }
+            }
+
+            int end = textBuffer.indexOf(inboundTerminator);
+            if (end < 0)
+                break;
+            String msg = textBuffer.substring(0, end);
+            textBuffer.delete(0, end + inboundTerminator.length());
+
+            // If there is a header message - (we only care for things that need receipt, such as
+            //  starting a chat, or changing nickname)
+            int headerEnd = msg.indexOf(Protocol.END_OF_HEADER);
+            if (headerEnd > 0)
+                processReceipt(msg.substring(0, headerEnd).split(Protocol.CONTROL_DELIMITER),
+                        msg.substring(headerEnd + 1));
+            else
+                listener.onMessage(this, msg);
+        }
+    }
+
+    // header is the receipt header: [request ID], confirmation, controlType, and any arguments
+    private void processReceipt(String[] header, String text) {
+        // Our own requests are matched by ID. Receipts we did not ask for have none.
+        PendingRequest request = null;
+        if (header.length > 0 && header[0].startsWith(Protocol.REQUEST_ID_HEAD)) {
+            request = pendingRequests.remove(header[0]);
+            header = Arrays.copyOfRange(header, 1, header.length);
+        }
+        Receipt receipt = new Receipt(header, text);
+
+        if (receipt.isOk()) {
+            // confirm nick change
+            if (request != null && request.args[0].equals("nick") && receipt.getAction().equals("nick")
+                    && receipt.getArgument(0) != null)
+                username = receipt.getArgument(0);
+
+            // Starting a new chat - on our request, or on someone else's if we are listening
+            if (receipt.getAction().equals("msg") && (request != null || listening)) {
+                listening = false;
+                listener.onChatStarted(this);
+            }
+
+            // Server tells us to become a listener, as our partner has left
+            if (receipt.getAction().equals("listen"))
+                listening = true;
+        }
+
+        listener.onMessage(this, text);
+        if (receipt.isOk() && receipt.getAction().equals("quit"))
+            close(null);
+
+        if (request != null)
+            request.receipt.complete(receipt);
+    }
+
+    // Loop thread only
+    void close(IOException cause) {
+        if (!connected)
+            return;
+        connected = false;
+        if (key != null)
+            key.cancel();
+        key = null;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("An error occurred while closing the connection.");
+        }
+
+        IOException failure = cause != null ? cause : new IOException("Session is closed.");
+        for (PendingWrite write : outbound)
+            if (write.written != null)
+                write.written.completeExceptionally(failure);
+        outbound.clear();
+        for (String requestId : pendingRequests.keySet()) {
+            PendingRequest request = pendingRequests.remove(requestId);
+            if (request != null)
+                request.receipt.completeExceptionally(failure);
+        }
+
+        listener.onDisconnected(this, cause);
+    }
+
+    private static class PendingRequest {
+        final String[] args;
+        final CompletableFuture<Receipt> receipt;
+
+        PendingRequest(String[] args, CompletableFuture<Receipt> receipt) {
+            this.args = args;
+            this.receipt = receipt;
+        }
+    }
+
+    private static class PendingWrite {
+        final ByteBuffer buffer;
+        final CompletableFuture<Void> written;
+
+        PendingWrite(ByteBuffer buffer, CompletableFuture<Void> written) {
+            this.buffer = buffer;
+            this.written = written;
+        }
+    }
+
+}
@@ -0,0 +1,48 @@
+package chatapp.client;
+
+import java.util.Arrays;
+
+/**
+ * The server's answer to a control message: "OK" or "NO", the action it concerns and any arguments,
+ * plus a line of text for display.
+ * @author Zicheng Gao
+ */
+public class Receipt {
+    private final String[] header;
+    private final String text;
+
+    /**
+     * @param header confirmation, controlType, and any arguments - without a request ID
+     * @param text displayable text following the header
+     */
+    public Receipt(String[] header, String text) {
+        this.header = header;
+        this.text = text;
+    }
+
+    public boolean isOk() {
+        return header.length > 0 && header[0].equals("OK");
+    }
+
+    public String getAction() {
+        return header.length > 1 ? header[1] : "";
+    }
+
+    /**
+     * @param index argument index, from 0
+     * @return argument, or null if the receipt has no such argument
+     */
+    public String getArgument(int index) {
+        return header.length > index + 2 ? header[index + 2] : null;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(header) + " " + text;
+    }
+
+}
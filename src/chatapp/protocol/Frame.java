@@ -0,0 +1,286 @@
+package chatapp.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * One message of the binary protocol.
+ *
+ * On the wire a frame is a varint body length followed by the body.
+ * The body is one opcode byte and then each field as a varint byte count followed by its UTF-8 bytes.
+ * Since everything is counted, no field needs escaping and any text may appear in any field.
+ *
+ * Field layout by opcode:
+ *  CHAT    - [text]
+ *  CONTROL - [request ID (optional), command line, e.g. "/nick Name1"]
+ *  RECEIPT - [request ID (if the request had one), OK|NO, action, action arguments..., text]
+ *
+ * @author Zicheng Gao
+ */
+public class Frame {
+    private final byte opcode;
+    private final String[] fields;
+
+    public Frame(byte opcode, String... fields) {
+        this.opcode = opcode;
+        this.fields = fields;
+    }
+
+    public static Frame chat(String text) {
+        return new Frame(Protocol.CHAT, text);
+    }
+
+    public static Frame control(String command) {
+        return new Frame(Protocol.CONTROL, command);
+    }
+
+    public static Frame control(String requestId, String command) {
+        return new Frame(Protocol.CONTROL, requestId, command);
+    }
+
+    public byte getOpcode() {
+        return opcode;
+    }
+
+    public String[] getFields() {
+        return fields;
+    }
+
+    /**
+     * @return the trailing text of the frame, which is the displayable part for every opcode
+     */
+    public String getText() {
+        return fields.length > 0 ? fields[fields.length - 1] : "";
+    }
+
+    /**
+     * @return the receipt header (status, action, arguments) without the trailing text
+     */
+    public String[] getHeader() {
+        return fields.length > 0 ? Arrays.copyOf(fields, fields.length - 1) : fields;
+    }
+
+    /**
+     * Write this frame. The stream is not flushed.
+     * @param out stream to write to
+     * @throws IOException on failure, or if the frame is too large
+     */
+    public void write(OutputStream out) throws IOException {
+        byte[][] encoded = new byte[fields.length][];
+        int length = 1;
+        for (int i = 0; i < fields.length; i++) {
+            encoded[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+            length += varIntSize(encoded[i].length) + encoded[i].length;
+        }
+        if (length > Protocol.MAX_FRAME_LENGTH)
+            throw new ProtocolException("Frame of " + length + " bytes exceeds maximum length.");
+
+        writeVarInt(out, length);
+        out.write(opcode);
+        for (byte[] field : encoded) {
+            writeVarInt(out, field.length);
+            out.write(field);
+        }
+    }
+
+    /**
+     * @return bytes this frame takes on the wire, length prefix included
+     */
+    public int encodedLength() {
+        int length = bodyLength();
+        return varIntSize(length) + length;
+    }
+
+    private int bodyLength() {
+        int length = 1;
+        for (String field : fields) {
+            int fieldLength = utf8Length(field);
+            length += varIntSize(fieldLength) + fieldLength;
+        }
+        return length;
+    }
+
+    /**
+     * Write this frame into a buffer, without building any intermediate arrays.
+     * @param buffer buffer with at least {@link #encodedLength()} bytes remaining
+     * @throws ProtocolException if the frame is too large
+     */
+    public void write(ByteBuffer buffer) throws ProtocolException {
+        int length = bodyLength();
+        if (length > Protocol.MAX_FRAME_LENGTH)
+            throw new ProtocolException("Frame of " + length + " bytes exceeds maximum length.");
+
+        putVarInt(buffer, length);
+        buffer.put(opcode);
+        for (String field : fields) {
+            putVarInt(buffer, utf8Length(field));
+            putUtf8(buffer, field);
+        }
+    }
+
+    /**
+     * @return this frame as it is written on the wire
+     * @throws IOException if the frame is too large
+     */
+    public byte[] toBytes() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(32);
+        write(out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Read one frame if the buffer holds all of it.
+     * @param buffer buffer ready for reading. Advanced past the frame, or left as it was if the frame is incomplete.
+     * @return the frame read, or null if more bytes are needed
+     * @throws ProtocolException if the frame is malformed or too large
+     */
+    public static Frame read(ByteBuffer buffer) throws ProtocolException {
+        int start = buffer.position();
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                buffer.position(start);
+                return null;
+            }
+            if (shift > 28)
+                throw new ProtocolException("Varint is too long.");
+            byte b = buffer.get();
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                break;
+        }
+        if (length < 1 || length > Protocol.MAX_FRAME_LENGTH)
+            throw new ProtocolException("Invalid frame length " + length + ".");
+        if (buffer.remaining() < length) {
+            buffer.position(start);
+            return null;
+        }
+
+        int end = buffer.position() + length;
+        ByteBuffer body = buffer.duplicate();
+        body.limit(end);
+        buffer.position(end);
+        return readBody(body);
+    }
+
+    /**
+     * Read a frame body whose length prefix has already been read.
+     * @param body buffer holding exactly the body - opcode, then fields to the limit
+     * @return the frame read
+     * @throws ProtocolException if the body is malformed
+     */
+    public static Frame readBody(ByteBuffer body) throws ProtocolException {
+        if (!body.hasRemaining())
+            throw new ProtocolException("Empty frame.");
+        byte opcode = body.get();
+        ArrayList<String> fields = new ArrayList<>(4);
+        while (body.hasRemaining()) {
+            int fieldLength = 0;
+            int shift = 0;
+            byte b;
+            do {
+                if (!body.hasRemaining() || shift > 28)
+                    throw new ProtocolException("Malformed field length.");
+                b = body.get();
+                fieldLength |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            if (fieldLength < 0 || fieldLength > body.remaining())
+                throw new ProtocolException("Field overruns frame.");
+
+            if (body.hasArray()) {
+                fields.add(new String(body.array(), body.arrayOffset() + body.position(), fieldLength,
+                        StandardCharsets.UTF_8));
+                body.position(body.position() + fieldLength);
+            } else {
+                byte[] bytes = new byte[fieldLength];
+                body.get(bytes);
+                fields.add(new String(bytes, StandardCharsets.UTF_8));
+            }
+        }
+
+        return new Frame(opcode, fields.toArray(new String[fields.size()]));
+    }
+
+    // Unsigned LEB128, as few bytes as the value needs
+    public static void writeVarInt(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    public static void putVarInt(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    public static int varIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    // Same count as String.getBytes(UTF_8), where a lone surrogate becomes '?'
+    private static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80)
+                length += 1;
+            else if (c < 0x800)
+                length += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c))
+                length += 1;
+            else
+                length += 3;
+        }
+        return length;
+    }
+
+    private static void putUtf8(ByteBuffer buffer, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80)
+                buffer.put((byte) c);
+            else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c))
+                buffer.put((byte) '?');
+            else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Frame" + opcode + Arrays.toString(fields);
+    }
+
+}
@@ -0,0 +1,45 @@
+package chatapp.protocol;
+
+/**
+ * Constants shared by both ends of the chat protocol, text and binary.
+ *
+ * A client opts in by sending {@link #MAGIC} followed by the highest version it speaks as the very first
+ * two bytes of the connection. The server answers with {@link #MAGIC} and the version it accepted.
+ * Anything else as the first byte is taken to be a legacy text client.
+ * {@link #MAGIC} can never begin a UTF-8 string, so no text message is mistaken for a handshake.
+ *
+ * @author Zicheng Gao
+ */
+public final class Protocol {
+    public static final int MAGIC = 0xB2;
+
+    // Versions
+    public static final int TEXT = 1;
+    public static final int BINARY = 2;
+    public static final int VERSION = BINARY;
+
+    // Frames larger than this are refused, which bounds the read buffer of every connection
+    public static final int MAX_FRAME_LENGTH = 1 << 16;
+
+    // Text receipts. Binary RECEIPT frames carry the same header as separate fields.
+    // Confirm successful control message that should reflect to the client
+    // No one should be able to manually send these
+    // Incoming receipts should be of the format confirmation-controlType-startOfText-MESSAGE
+    // For example, "OK\u0001nick\u0002Name successfully set to Name1"
+    // Or, "NO\u0001nick\u0002Nick Name1 already exists."
+    public static final String CONTROL_DELIMITER = "\u0001";
+    public static final String END_OF_HEADER = "\u0002";
+
+    // Control requests are sent headed by a request ID, which the server echoes at the head of the receipt
+    // For example, "#12\u0002/nick Name1" is answered by "#12\u0001OK\u0001nick\u0001Name1\u0002..."
+    // Many requests can then be in flight at once.
+    public static final String REQUEST_ID_HEAD = "#";
+
+    // Opcodes - one byte at the start of every frame body
+    public static final byte CHAT = 1;
+    public static final byte CONTROL = 2;
+    public static final byte RECEIPT = 3;
+
+    private Protocol() {}
+
+}
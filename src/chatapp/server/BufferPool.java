@@ -0,0 +1,200 @@
+package chatapp.server;
+
+import chatapp.protocol.Protocol;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Direct buffers shared by every {@link User}.
+ *
+ * A user borrows a buffer only while it has bytes in flight and returns it as soon as it is done,
+ * so an idle connection holds no buffer at all.
+ * Buffers come in a few size classes, and each request is served from the smallest class that fits.
+ *
+ * With leak detection on (-Dchatapp.pool.leakDetection=true) every borrow remembers where it was made,
+ * and {@link #reportLeaks(long)} names the borrows that have been out for too long.
+ * @author Zicheng Gao
+ */
+public class BufferPool {
+    // The largest class holds a whole frame, length prefix and all
+    private static final int[] SIZE_CLASSES = {256, 2048, 16384, Protocol.MAX_FRAME_LENGTH + 8};
+
+    // Free buffers kept per class - enough to cover this many bytes. The rest are left to the garbage collector.
+    private static final int RETAINED_BYTES_PER_CLASS = 1 << 20;
+
+    private final SizeClass[] classes;
+
+    // Buffer -> where and when it was borrowed, only kept with leak detection on
+    private final Map<ByteBuffer, Borrow> borrows;
+
+    public BufferPool() {
+        this(Boolean.getBoolean("chatapp.pool.leakDetection"));
+    }
+
+    public BufferPool(boolean leakDetection) {
+        classes = new SizeClass[SIZE_CLASSES.length];
+        for (int i = 0; i < SIZE_CLASSES.length; i++)
+            classes[i] = new SizeClass(SIZE_CLASSES[i]);
+        borrows = leakDetection ? Collections.synchronizedMap(new IdentityHashMap<>()) : null;
+    }
+
+    /**
+     * @return the size of the largest buffer that can be borrowed
+     */
+    public int getMaxSize() {
+        return SIZE_CLASSES[SIZE_CLASSES.length - 1];
+    }
+
+    /**
+     * Borrow a buffer. It must be given back with {@link #release(ByteBuffer)}.
+     * @param size bytes needed
+     * @return a cleared buffer of at least that capacity
+     */
+    public ByteBuffer acquire(int size) {
+        SizeClass sizeClass = classFor(size);
+        if (sizeClass == null)
+            throw new IllegalArgumentException("No buffer holds " + size + " bytes.");
+
+        ByteBuffer buffer = sizeClass.free.poll();
+        if (buffer != null) {
+            sizeClass.freeCount.decrementAndGet();
+            buffer.clear();
+        } else {
+            buffer = ByteBuffer.allocateDirect(sizeClass.size);
+            sizeClass.allocated.incrementAndGet();
+        }
+        sizeClass.borrowed.incrementAndGet();
+        sizeClass.acquires.incrementAndGet();
+
+        if (borrows != null)
+            borrows.put(buffer, new Borrow());
+        return buffer;
+    }
+
+    /**
+     * Give back a borrowed buffer. It must not be used afterwards.
+     * @param buffer buffer from {@link #acquire(int)}
+     */
+    public void release(ByteBuffer buffer) {
+        SizeClass sizeClass = classFor(buffer.capacity());
+        if (sizeClass == null || sizeClass.size != buffer.capacity() || !buffer.isDirect())
+            throw new IllegalArgumentException("Buffer was not borrowed from this pool.");
+        if (borrows != null && borrows.remove(buffer) == null)
+            throw new IllegalStateException("Buffer was released twice, or never borrowed.");
+
+        sizeClass.borrowed.decrementAndGet();
+        if (sizeClass.freeCount.get() < RETAINED_BYTES_PER_CLASS / sizeClass.size) {
+            sizeClass.freeCount.incrementAndGet();
+            sizeClass.free.add(buffer);
+        } else
+            sizeClass.allocated.decrementAndGet();
+    }
+
+    /**
+     * Borrow a larger buffer holding the contents of one already borrowed, which is released.
+     * @param buffer borrowed buffer, in write mode
+     * @return larger buffer, in write mode, positioned after the copied bytes
+     */
+    public ByteBuffer grow(ByteBuffer buffer) {
+        ByteBuffer larger = acquire(buffer.capacity() + 1);
+        buffer.flip();
+        larger.put(buffer);
+        release(buffer);
+        return larger;
+    }
+
+    private SizeClass classFor(int size) {
+        for (SizeClass sizeClass : classes)
+            if (size <= sizeClass.size)
+                return sizeClass;
+        return null;
+    }
+
+    /**
+     * @return bytes of buffers currently lent out
+     */
+    public long getBorrowedBytes() {
+        long bytes = 0;
+        for (SizeClass sizeClass : classes)
+            bytes += (long) sizeClass.borrowed.get() * sizeClass.size;
+        return bytes;
+    }
+
+    /**
+     * @return bytes of buffers the pool has allocated and not yet dropped, lent out or not
+     */
+    public long getAllocatedBytes() {
+        long bytes = 0;
+        for (SizeClass sizeClass : classes)
+            bytes += (long) sizeClass.allocated.get() * sizeClass.size;
+        return bytes;
+    }
+
+    /**
+     * Log every borrow that has been out for longer than the given age. Needs leak detection.
+     * @param ageMillis age beyond which a borrow is suspect
+     * @return number of suspect borrows
+     */
+    public int reportLeaks(long ageMillis) {
+        if (borrows == null)
+            return 0;
+
+        long now = System.currentTimeMillis();
+        int leaks = 0;
+        synchronized (borrows) {
+            for (Map.Entry<ByteBuffer, Borrow> entry : borrows.entrySet()) {
+                Borrow borrow = entry.getValue();
+                if (now - borrow.time > ageMillis) {
+                    leaks++;
+                    System.err.println("POOL: " + entry.getKey().capacity() + " byte buffer borrowed by "
+                            + borrow.thread + " " + (now - borrow.time) + "ms ago, from");
+                    borrow.trace.printStackTrace();
+                }
+            }
+        }
+        return leaks;
+    }
+
+    // Utilization per size class, e.g. "256B 2/10/12 (borrowed/free/allocated), 431 acquires"
+    @Override
+    public String toString() {
+        StringBuilder stringBuilder = new StringBuilder(128);
+        for (SizeClass sizeClass : classes) {
+            stringBuilder.append(sizeClass.size).append("B ")
+                    .append(sizeClass.borrowed.get()).append('/')
+                    .append(sizeClass.freeCount.get()).append('/')
+                    .append(sizeClass.allocated.get()).append(" (borrowed/free/allocated), ")
+                    .append(sizeClass.acquires.get()).append(" acquires; ");
+        }
+        stringBuilder.append(getBorrowedBytes()).append(" of ").append(getAllocatedBytes()).append(" bytes in use");
+        return stringBuilder.toString();
+    }
+
+    private static class SizeClass {
+        final int size;
+        final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+        // ConcurrentLinkedQueue.size() walks the queue, so free buffers are counted separately
+        final AtomicInteger freeCount = new AtomicInteger();
+        final AtomicInteger borrowed = new AtomicInteger();
+        final AtomicInteger allocated = new AtomicInteger();
+        final AtomicLong acquires = new AtomicLong();
+
+        SizeClass(int size) {
+            this.size = size;
+        }
+    }
+
+    private static class Borrow {
+        final long time = System.currentTimeMillis();
+        final String thread = Thread.currentThread().getName();
+        final Throwable trace = new Throwable("Borrowed here");
+    }
+
+}
@@ -0,0 +1,298 @@
+package chatapp.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The most recent chat relayed by the server, with an inverted index for {@link #search(User, String, int)}.
+ *
+ * Lines are kept in one ring for the whole server, each tagged with the pair of connections that exchanged it.
+ * Connections are told apart by {@link User#getConnectionId()}, so whoever takes a name later cannot see
+ * chat from its earlier owner, and renaming does not cut a user off from their own chat.
+ * The index is updated as each line is added, and as the oldest line is pushed out of the ring
+ * its terms are taken off the head of their posting lists, so memory stays bounded by the window.
+ * Searches only see lines from conversations the searching user took part in. Each connection has a posting
+ * list of its own lines, which is intersected with the terms' lists like another term, so a search never
+ * walks more than the searching user's own lines. Searches share a read lock, so they run alongside
+ * each other and only hold up relays while they intersect.
+ *
+ * The window is bounded both in lines, set with -Dchatapp.history.size (default 1048576),
+ * and in estimated heap bytes, set with -Dchatapp.history.bytes (default 64 MiB), whichever is reached first.
+ * Lines longer than {@link #MAX_LINE_LENGTH} chars are cut short before they are stored and indexed.
+ * The ring starts small and grows as lines arrive, so an idle server holds little.
+ * @author Zicheng Gao
+ */
+public class ChatHistory {
+    private static final int DEFAULT_CAPACITY = 1 << 20;
+    private static final long DEFAULT_MAX_BYTES = 64L << 20;
+    private static final int INITIAL_SLOTS = 1024;
+
+    // Keeps any one line from taking much of the budget, and any search reply well within a frame
+    static final int MAX_LINE_LENGTH = 512;
+
+    // Rough heap costs, beyond the chars themselves, of
+    //  a stored line: its string and char array, and its share of the hash tables
+    private static final int LINE_OVERHEAD = 112;
+    //  an entry in a posting list, with room for the list to grow
+    private static final int TERM_OVERHEAD = 20;
+    //  a posting list: its map entry and table slot, key object, PostingList and first array
+    private static final int LIST_OVERHEAD = 160;
+    //  a slot of the ring, whether used or not: two references, two longs and an int
+    private static final int SLOT_OVERHEAD = 28;
+
+    // Ring of lines, indexed by sequence number modulo its length. Doubled as needed, up to capacity.
+    private String[] texts;
+    private String[] senders;
+    private long[] senderIds;
+    private long[] recipientIds;
+    private int[] costs;
+    private final int capacity;
+
+    // Estimated bytes held by the ring, its lines and the index, and the most they may hold
+    private long bytes;
+    private final long maxBytes;
+
+    // Sequence number of the next line, and of the oldest line still held
+    private long nextSeq;
+    private long oldestSeq;
+
+    // Term -> sequence numbers of the lines containing it
+    private final HashMap<String, PostingList> index;
+
+    // Connection ID -> sequence numbers of the lines it sent or received
+    private final HashMap<Long, PostingList> participants;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public ChatHistory() {
+        this(Integer.getInteger("chatapp.history.size", DEFAULT_CAPACITY),
+                Long.getLong("chatapp.history.bytes", DEFAULT_MAX_BYTES));
+    }
+
+    public ChatHistory(int capacity, long maxBytes) {
+        this.capacity = capacity;
+        this.maxBytes = maxBytes;
+        allocate(Math.max(0, Math.min(capacity, INITIAL_SLOTS)));
+        index = new HashMap<>(1024);
+        participants = new HashMap<>(64);
+    }
+
+    private void allocate(int slots) {
+        bytes += (long) SLOT_OVERHEAD * (slots - (texts != null ? texts.length : 0));
+        texts = new String[slots];
+        senders = new String[slots];
+        senderIds = new long[slots];
+        recipientIds = new long[slots];
+        costs = new int[slots];
+    }
+
+    /**
+     * Record a relayed line, pushing out the oldest lines until it fits the window.
+     * @param sender user who sent it
+     * @param recipient user it was relayed to
+     * @param text the chat text
+     */
+    public void add(User sender, User recipient, String text) {
+        if (text.length() > MAX_LINE_LENGTH) {
+            int end = MAX_LINE_LENGTH;
+            if (Character.isHighSurrogate(text.charAt(end - 1)))
+                end--;
+            text = text.substring(0, end) + "...";
+        }
+        String name = sender.getName();
+        List<String> terms = tokenize(text);
+        // one posting entry per term, and one for each participant
+        int cost = LINE_OVERHEAD + 2 * (text.length() + name.length()) + TERM_OVERHEAD * (terms.size() + 2);
+        if (capacity < 1 || cost > maxBytes)
+            return;
+
+        lock.writeLock().lock();
+        try {
+            append(sender, recipient, text, name, terms, cost);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void append(User sender, User recipient, String text, String name, List<String> terms, int cost) {
+        while (nextSeq - oldestSeq == capacity || (nextSeq > oldestSeq && bytes + cost > maxBytes))
+            evictOldest();
+        if (nextSeq - oldestSeq == texts.length)
+            grow();
+
+        long seq = nextSeq++;
+        int slot = (int) (seq % texts.length);
+        texts[slot] = text;
+        // the name as it was when sent, for display
+        senders[slot] = name;
+        senderIds[slot] = sender.getConnectionId();
+        recipientIds[slot] = recipient.getConnectionId();
+        costs[slot] = cost;
+        bytes += cost;
+
+        for (String term : terms)
+            post(index, term, 2 * term.length(), seq);
+        post(participants, sender.getConnectionId(), 0, seq);
+        if (recipient.getConnectionId() != sender.getConnectionId())
+            post(participants, recipient.getConnectionId(), 0, seq);
+
+        // New posting lists are only known once the line is in, and may take the window over budget
+        while (bytes > maxBytes && nextSeq - oldestSeq > 1)
+            evictOldest();
+    }
+
+    // keyBytes - chars of the key, charged along with the list if the list is new
+    private <K> void post(HashMap<K, PostingList> lists, K key, int keyBytes, long seq) {
+        PostingList postings = lists.get(key);
+        if (postings == null) {
+            postings = new PostingList();
+            lists.put(key, postings);
+            bytes += LIST_OVERHEAD + keyBytes;
+        }
+        postings.add(seq);
+    }
+
+    // Take the oldest line off the head of a list, if it is there
+    private <K> void unpost(HashMap<K, PostingList> lists, K key, int keyBytes) {
+        PostingList postings = lists.get(key);
+        if (postings != null && postings.size() > 0 && postings.first() == oldestSeq) {
+            postings.removeFirst();
+            if (postings.size() == 0) {
+                lists.remove(key);
+                bytes -= LIST_OVERHEAD + keyBytes;
+            }
+        }
+    }
+
+    // Double the ring, moving each line to its slot in the new length
+    private void grow() {
+        String[] oldTexts = texts;
+        String[] oldSenders = senders;
+        long[] oldSenderIds = senderIds;
+        long[] oldRecipientIds = recipientIds;
+        int[] oldCosts = costs;
+        allocate((int) Math.min(capacity, 2L * oldTexts.length));
+        for (long seq = oldestSeq; seq < nextSeq; seq++) {
+            int from = (int) (seq % oldTexts.length);
+            int to = (int) (seq % texts.length);
+            texts[to] = oldTexts[from];
+            senders[to] = oldSenders[from];
+            senderIds[to] = oldSenderIds[from];
+            recipientIds[to] = oldRecipientIds[from];
+            costs[to] = oldCosts[from];
+        }
+    }
+
+    // The oldest line is the oldest entry of each of its posting lists
+    private void evictOldest() {
+        int slot = (int) (oldestSeq % texts.length);
+        for (String term : tokenize(texts[slot]))
+            unpost(index, term, 2 * term.length());
+        unpost(participants, senderIds[slot], 0);
+        unpost(participants, recipientIds[slot], 0);
+
+        bytes -= costs[slot];
+        texts[slot] = null;
+        senders[slot] = null;
+        oldestSeq++;
+    }
+
+    /**
+     * Find the most recent lines containing every term, among the user's own conversations.
+     * @param user the searching user
+     * @param query search terms, separated by anything that is not a letter or digit
+     * @param limit most lines to return
+     * @return matching lines as they were displayed, e.g. "Name1: hello", oldest first
+     */
+    public List<String> search(User user, String query, int limit) {
+        List<String> terms = tokenize(query);
+        if (terms.isEmpty())
+            return Collections.emptyList();
+
+        lock.readLock().lock();
+        try {
+            return search(user.getConnectionId(), terms, limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private List<String> search(long id, List<String> terms, int limit) {
+        // The user's own lines are one more list to intersect
+        PostingList[] postings = new PostingList[terms.size() + 1];
+        postings[0] = participants.get(id);
+        for (int i = 1; i < postings.length; i++)
+            postings[i] = index.get(terms.get(i - 1));
+
+        // Walk the shortest posting list and check the rest for each of its lines
+        PostingList shortest = null;
+        for (PostingList list : postings) {
+            if (list == null)
+                return Collections.emptyList();
+            if (shortest == null || list.size() < shortest.size())
+                shortest = list;
+        }
+
+        ArrayList<String> matches = new ArrayList<>(Math.min(limit, 16));
+        // newest first, so a limited search returns the most recent matches
+        candidates:
+        for (int i = shortest.size() - 1; i >= 0 && matches.size() < limit; i--) {
+            long seq = shortest.get(i);
+            int slot = (int) (seq % texts.length);
+            for (PostingList other : postings)
+                if (other != shortest && !other.contains(seq))
+                    continue candidates;
+            matches.add(senders[slot] + ": " + texts[slot]);
+        }
+
+        Collections.reverse(matches);
+        return matches;
+    }
+
+    /**
+     * @return number of lines currently held
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return (int) (nextSeq - oldestSeq);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return estimated heap bytes held by the lines currently held
+     */
+    public long bytes() {
+        lock.readLock().lock();
+        try {
+            return bytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Distinct lower-case runs of letters and digits, in order of appearance
+    static List<String> tokenize(String text) {
+        LinkedHashSet<String> terms = new LinkedHashSet<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0)
+                start = i;
+            else if (!wordChar && start >= 0) {
+                terms.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return new ArrayList<>(terms);
+    }
+
+}
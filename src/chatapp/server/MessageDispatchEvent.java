@@ -0,0 +1,28 @@
+package chatapp.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A message was dispatched: relayed as chat, or run as a control action.
+ * The duration includes every lookup and write the message caused.
+ * @author Zicheng Gao
+ */
+@Name("chatapp.MessageDispatch")
+@Label("Message Dispatch")
+@Category({"Chat App", "Server"})
+@Description("A message was relayed or its control action run, including every write it caused")
+class MessageDispatchEvent extends Event {
+    @Label("Correlation ID")
+    long correlationId;
+
+    @Label("User")
+    String user;
+
+    @Label("Action")
+    @Description("Control action name, or \"chat\"")
+    String action;
+}
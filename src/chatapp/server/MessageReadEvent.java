@@ -0,0 +1,31 @@
+package chatapp.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A message was read off a user's socket. Timed from its first byte, so idle time is not counted.
+ * @author Zicheng Gao
+ */
+@Name("chatapp.MessageRead")
+@Label("Message Read")
+@Category({"Chat App", "Server"})
+@Description("A whole message or frame arrived, timed from its first byte")
+class MessageReadEvent extends Event {
+    @Label("Correlation ID")
+    long correlationId;
+
+    @Label("User")
+    String user;
+
+    @Label("Protocol Version")
+    int protocolVersion;
+
+    @Label("Size")
+    @DataAmount
+    int bytes;
+}
@@ -0,0 +1,36 @@
+package chatapp.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Correlation IDs tying together the flight recorder events of one message.
+ *
+ * An ID is assigned when a message is read, and stays current on that user's thread
+ * while the message is dispatched and its replies and relays are written.
+ * Record with e.g. -XX:StartFlightRecording=filename=chat.jfr and filter on the "Chat App" category.
+ * @author Zicheng Gao
+ */
+public final class MessageTrace {
+    private static final AtomicLong nextId = new AtomicLong();
+    private static final ThreadLocal<long[]> current = ThreadLocal.withInitial(() -> new long[1]);
+
+    private MessageTrace() {}
+
+    /**
+     * Start tracing a new message on this thread.
+     * @return its correlation ID
+     */
+    public static long begin() {
+        long id = nextId.incrementAndGet();
+        current.get()[0] = id;
+        return id;
+    }
+
+    /**
+     * @return correlation ID of the message this thread is handling, or 0 if none
+     */
+    public static long current() {
+        return current.get()[0];
+    }
+
+}
@@ -0,0 +1,32 @@
+package chatapp.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A message was encoded and written to a user's socket, until the socket had taken all of it.
+ * @author Zicheng Gao
+ */
+@Name("chatapp.MessageWrite")
+@Label("Message Write")
+@Category({"Chat App", "Server"})
+@Description("A message was encoded and written to a user's socket")
+class MessageWriteEvent extends Event {
+    @Label("Correlation ID")
+    long correlationId;
+
+    @Label("Recipient")
+    String user;
+
+    @Label("Relayed")
+    @Description("Chat from another user, rather than a server message")
+    boolean relayed;
+
+    @Label("Size")
+    @DataAmount
+    int bytes;
+}
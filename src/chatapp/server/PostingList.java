@@ -0,0 +1,69 @@
+package chatapp.server;
+
+/**
+ * Ascending message sequence numbers for one term of the {@link ChatHistory} index.
+ * Kept as a plain long array, appended at the tail and evicted from the head as history slides forward.
+ * @author Zicheng Gao
+ */
+class PostingList {
+    private static final int MIN_CAPACITY = 2;
+
+    private long[] seqs = new long[MIN_CAPACITY];
+    private int head;
+    private int size;
+
+    int size() {
+        return size;
+    }
+
+    // i from 0, oldest first
+    long get(int i) {
+        return seqs[head + i];
+    }
+
+    long first() {
+        return seqs[head];
+    }
+
+    // seq must be greater than every seq already added
+    void add(long seq) {
+        if (head + size == seqs.length) {
+            // reuse space freed at the head before growing
+            long[] target = size < seqs.length / 2 ? seqs : new long[seqs.length * 2];
+            System.arraycopy(seqs, head, target, 0, size);
+            seqs = target;
+            head = 0;
+        }
+        seqs[head + size++] = seq;
+    }
+
+    void removeFirst() {
+        head++;
+        size--;
+        if (size == 0)
+            head = 0;
+        // give memory back once mostly evicted
+        else if (size < seqs.length / 4 && seqs.length > MIN_CAPACITY * 4) {
+            long[] smaller = new long[seqs.length / 2];
+            System.arraycopy(seqs, head, smaller, 0, size);
+            seqs = smaller;
+            head = 0;
+        }
+    }
+
+    boolean contains(long seq) {
+        int low = head;
+        int high = head + size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (seqs[mid] < seq)
+                low = mid + 1;
+            else if (seqs[mid] > seq)
+                high = mid - 1;
+            else
+                return true;
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,86 @@
+package chatapp.server;
+
+import chatapp.protocol.Frame;
+import chatapp.protocol.Protocol;
+
+import java.util.Arrays;
+
+/**
+ * A message from the server to one user: plain text, or a receipt with its header kept as separate fields.
+ *
+ * Keeping the header apart means names and request IDs chosen by users never have to be parsed back out of
+ * a string. Binary clients get each field as its own frame field, so any text may appear in any of them.
+ * The text protocol can only join them with {@link Protocol#CONTROL_DELIMITER} and {@link Protocol#END_OF_HEADER}.
+ * @author Zicheng Gao
+ */
+public class Reply {
+    // [request ID (if any), OK|NO, action, action arguments...], or null for a plain message
+    private final String[] header;
+    private final String text;
+
+    private Reply(String[] header, String text) {
+        this.header = header;
+        this.text = text;
+    }
+
+    public static Reply message(String text) {
+        return new Reply(null, text);
+    }
+
+    public static Reply ok(String action, String text) {
+        return new Reply(new String[]{"OK", action}, text);
+    }
+
+    public static Reply ok(String action, String argument, String text) {
+        return new Reply(new String[]{"OK", action, argument}, text);
+    }
+
+    public static Reply no(String action, String text) {
+        return new Reply(new String[]{"NO", action}, text);
+    }
+
+    public boolean isReceipt() {
+        return header != null;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * @param requestId request ID chosen by the client
+     * @return this receipt headed by the request ID
+     */
+    public Reply withRequestId(String requestId) {
+        String[] headed = new String[header.length + 1];
+        headed[0] = requestId;
+        System.arraycopy(header, 0, headed, 1, header.length);
+        return new Reply(headed, text);
+    }
+
+    /**
+     * @return a RECEIPT frame for a receipt, or a CHAT frame for a plain message
+     */
+    public Frame toFrame() {
+        if (header == null)
+            return Frame.chat(text);
+        String[] fields = Arrays.copyOf(header, header.length + 1);
+        fields[header.length] = text;
+        return new Frame(Protocol.RECEIPT, fields);
+    }
+
+    /**
+     * @return the reply as the text protocol sends it, e.g. "OK\u0001nick\u0001Name1\u0002SERVER: ..."
+     */
+    public String toText() {
+        if (header == null)
+            return text;
+        return String.join(Protocol.CONTROL_DELIMITER, header) + Protocol.END_OF_HEADER + text;
+    }
+
+    @Override
+    public String toString() {
+        return toText();
+    }
+
+}
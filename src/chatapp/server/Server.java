@@ -1,10 +1,14 @@
 package chatapp.server;
 
-import chatapp.client.Client;
+import chatapp.protocol.Protocol;
 
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
 
 /**
  * @author Zicheng Gao
@@ -14,9 +18,19 @@ public class Server {
     public static final char CTRL_HEAD = '/';
     public static final char MSG_HEAD = 'm';
 
-    private ServerSocket welcomeSocket = null;
+    private ServerSocketChannel welcomeSocket = null;
     private int port;
 
+    // I/O buffers, lent to users only while they have data in flight
+    private BufferPool bufferPool;
+
+    // Recently relayed chat, for /search
+    private ChatHistory history;
+    private static final int SEARCH_LIMIT = 20;
+
+    // How often to log buffer pool utilization, and how long a borrow may last before it is reported as a leak
+    private static final long POOL_REPORT_PERIOD = 5 * 60 * 1000;
+
     // Nickname -> Socket
     private HashMap<String, User> namedUsers = null;
 
@@ -31,16 +45,18 @@ public class Server {
     public Server(int port) {
         this.port = port;
         this.namedUsers = new HashMap<String, User>(64);
+        this.bufferPool = new BufferPool();
+        this.history = new ChatHistory();
         try {
-            welcomeSocket = new ServerSocket(port);
+            welcomeSocket = ServerSocketChannel.open();
+            welcomeSocket.bind(new InetSocketAddress(port));
             actions = new ServerActions(this);
 
             // thank goodness for java 8
             // Change nick
             actions.put("nick", (msg, args) -> (server, user) -> {
                 if (args.length < 2)
-                    return "NO" + Client.CONTROL_DELIMITER + args[0] + Client.END_OF_HEADER +
-                            "SERVER: Invalid use of /nick. Please specify a new name.";
+                    return Reply.no(args[0], "SERVER: Invalid use of /nick. Please specify a new name.");
 
                 String oldName = user.getName();
                 String newName = msg.substring(args[0].length() + 2); // +2 for / and space
@@ -48,12 +64,11 @@ public class Server {
                 // reserved name?
                 // TODO - force chatapp.client to "previous name" ?
                 if (newName.equals("Listener"))
-                    return "NO" + Client.CONTROL_DELIMITER + args[0] + Client.END_OF_HEADER + "SERVER: 'Listener' is a reserved name.";
+                    return Reply.no(args[0], "SERVER: 'Listener' is a reserved name.");
 
                 // name available?
-                if (namedUsers.containsKey(newName))
-                    return "NO" + Client.CONTROL_DELIMITER + args[0] + Client.END_OF_HEADER +
-                            "SERVER: " + newName + " already in use."; // TODO - force chatapp.client to "previous name" ?
+                if (lookup(newName) != null)
+                    return Reply.no(args[0], "SERVER: " + newName + " already in use."); // TODO - force chatapp.client to "previous name" ?
 
                 // get rid of old name if it's there
                 if (namedUsers.containsKey(oldName))
@@ -62,63 +77,60 @@ public class Server {
                 // if available, set name and add to "named users"
                 user.setName(newName);
                 namedUsers.put(newName, user);
-                return "OK" + Client.CONTROL_DELIMITER + args[0] + Client.CONTROL_DELIMITER + newName
-                        + Client.END_OF_HEADER + "SERVER: Name successfully set to " + newName;
+                return Reply.ok(args[0], newName, "SERVER: Name successfully set to " + newName);
             });
 
             // Talk to
             actions.put("msg", (msg, args) -> (server, user) -> {
                 // invalid use
                 if (args.length < 2)
-                    return "SERVER: Invalid use of /msg. Please specify a target user or 'Listener.'";
+                    return Reply.message(
+                            "SERVER: Invalid use of /msg. Please specify a target user or 'Listener.'");
 
                 String targetName = msg.substring(args[0].length() + 2); // +2 for / and space
                 // make sure we have a name first
-                if (!namedUsers.containsKey(user.getName()))
-                    return "SERVER: You are not a named user. Use /nick to set your name before chatting.";
+                if (lookup(user.getName()) == null)
+                    return Reply.message(
+                            "SERVER: You are not a named user. Use /nick to set your name before chatting.");
 
                 // If we want to become a listener / end and existing conversation
                 if (targetName.equals("Listener")) {
                     if (user.getCorrespondent() != null) {
                         user.dropCorrespondent();
-                        return "OK" + Client.CONTROL_DELIMITER + "listen" + Client.END_OF_HEADER +
-                                "SERVER: Ended chat and now listening.";
+                        return Reply.ok("listen", "SERVER: Ended chat and now listening.");
                     } else {
                         // already al istener
-                        return "NO" + Client.CONTROL_DELIMITER + "listen" + Client.END_OF_HEADER +
-                                "SERVER: You are already a listener.";
+                        return Reply.no("listen", "SERVER: You are already a listener.");
                     }
                 }
 
                 // check for our target
-                if (!namedUsers.containsKey(targetName))
-                    return "SERVER: User \"" + targetName + "\" is not online.";
-                User target = namedUsers.get(targetName);
+                User target = lookup(targetName);
+                if (target == null)
+                    return Reply.message("SERVER: User \"" + targetName + "\" is not online.");
 
                 // target is not chatting and is different
                 // (target is a listener)
                 if (target.getCorrespondent() != null) {
                     if (target.getCorrespondent() != user)
-                        return "SERVER: User \"" + targetName + "\" is already in a chat.";
+                        return Reply.message("SERVER: User \"" + targetName + "\" is already in a chat.");
                     else
-                        return "SERVER: You are already chatting with " + targetName;
+                        return Reply.message("SERVER: You are already chatting with " + targetName);
                 }
 
                 // inform old correspondent, if any, of a switch
                 if (user.getCorrespondent() != null) {
-                    user.getCorrespondent().write("OK" + Client.CONTROL_DELIMITER + "listen" + Client.END_OF_HEADER +
-                            "SERVER: User \"" + user.getName() + "\" is no longer chatting.");
+                    user.getCorrespondent().write(Reply.ok("listen",
+                            "SERVER: User \"" + user.getName() + "\" is no longer chatting."));
                     user.getCorrespondent().setCorrespondent(null);
                 }
 
                 // found - please set
                 target.setCorrespondent(user);
                 user.setCorrespondent(target);
-                target.write("OK" + Client.CONTROL_DELIMITER + args[0] + Client.END_OF_HEADER +
-                        "SERVER: Now chatting with " + user.getName());
+                target.write(Reply.ok(args[0], "SERVER: Now chatting with " + user.getName()));
 
-                return "OK" + Client.CONTROL_DELIMITER + args[0] + Client.END_OF_HEADER +
-                        "SERVER: Now chatting with " + targetName;
+                return Reply.ok(args[0], "SERVER: Now chatting with " + targetName);
             });
 
             // Change Delimiter
@@ -135,21 +147,42 @@ public class Server {
                     // Do not return something containing the delimiter.
                     // The chatapp.client chops up the message at the wrong part.
 //                    return "SERVER: User " + user.getName() + " has changed delimiter to <" + newTerminator + ">";
-                    return "SERVER: Delimiter changed.";
+                    return Reply.ok(args[0], "SERVER: Delimiter changed.");
                 } else {
-                    return "SERVER: No delimiter specified!";
+                    return Reply.message("SERVER: No delimiter specified!");
                 }
             });
 
+            // Search recent chat
+            actions.put("search", (msg, args) -> (server, user) -> {
+                if (args.length < 2)
+                    return Reply.no(args[0],
+                            "SERVER: Invalid use of /search. Please specify words to search for.");
+
+                String query = msg.substring(args[0].length() + 2); // +2 for / and space
+                List<String> lines = history.search(user, query, SEARCH_LIMIT);
+                if (lines.isEmpty())
+                    return Reply.ok(args[0], "SERVER: No recent messages match \"" + query + "\".");
+
+                // One line each, unless newlines end this user's messages - the receipt would then be cut short
+                String separator = user.getProtocolVersion() == Protocol.BINARY ||
+                        !user.getTerminator().contains("\n") ? "\n" : " | ";
+                StringBuilder output = new StringBuilder(64 * lines.size());
+                output.append("SERVER: ").append(lines.size()).append(" recent messages match \"")
+                        .append(query).append("\":");
+                for (String line : lines)
+                    output.append(separator).append(line);
+                return Reply.ok(args[0], output.toString());
+            });
+
             // Quit server
             actions.put("quit", (msg, args) -> (server, user) -> {
-                String output = "OK" + Client.CONTROL_DELIMITER + args[0] + Client.END_OF_HEADER +
-                        "User " + user.getName() + " has quit";
+                String output = "User " + user.getName() + " has quit";
                 user.disconnect();
                 if (args.length > 1)
-                    return output + " with message \"" + args[1] + "\"";
+                    return Reply.ok(args[0], output + " with message \"" + args[1] + "\"");
                 else
-                    return output + ".";
+                    return Reply.ok(args[0], output + ".");
             });
 
         } catch (IOException e) {
@@ -170,6 +203,45 @@ public class Server {
         return namedUsers;
     }
 
+    /**
+     * Find a named user, tracing the lookup for the flight recorder.
+     * @param name nickname
+     * @return the user, or null if no one has that name
+     */
+    public User lookup(String name) {
+        UserLookupEvent event = new UserLookupEvent();
+        event.begin();
+        User user = namedUsers.get(name);
+        event.end();
+        if (event.shouldCommit()) {
+            event.correlationId = MessageTrace.current();
+            event.name = name;
+            event.found = user != null;
+            event.commit();
+        }
+        return user;
+    }
+
+    public ChatHistory getHistory() {
+        return history;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    // Log pool utilization and any buffers held for suspiciously long
+    private void startPoolReports() {
+        Timer timer = new Timer("BufferPool report", true);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                log("POOL: " + bufferPool);
+                bufferPool.reportLeaks(POOL_REPORT_PERIOD);
+            }
+        }, POOL_REPORT_PERIOD, POOL_REPORT_PERIOD);
+    }
+
     public void close() {
         try {
             welcomeSocket.close();
@@ -202,6 +274,7 @@ public class Server {
 
         try {
             System.out.println("The server is running on port " + server.getPort());
+            server.startPoolReports();
             while (true)
                 try {
                     new User(server, server.welcomeSocket.accept()).start();
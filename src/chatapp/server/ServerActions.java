@@ -6,12 +6,12 @@ import java.util.function.BiFunction;
 /**
  * Functionally, for each string name of command
  * associates a function that takes in message parameters, {@link Server}, {@link User}
- * and returns a string.
+ * and returns a {@link Reply}.
  *
  * Function argument 0 is the name of the action itself, while 1 and on refer to the passed in arguments
  * @author Zicheng Gao
  */
-public class ServerActions extends HashMap<String, BiFunction<String, String[], BiFunction<Server, User, String>>>{
+public class ServerActions extends HashMap<String, BiFunction<String, String[], BiFunction<Server, User, Reply>>>{
     private Server server;
 
     public ServerActions(Server server) {
@@ -19,19 +19,55 @@ public class ServerActions extends HashMap<String, BiFunction<String, String[],
     }
 
     // Take in a control message
-    public String processAction(User user, String cMsg) {
+    public Reply processAction(User user, String cMsg) {
+        // Binary clients can send a CONTROL frame holding anything, including nothing at all
+        if (cMsg.isEmpty() || cMsg.charAt(0) != Server.CTRL_HEAD)
+            return Reply.no("", "SERVER: Control messages must start with '" + Server.CTRL_HEAD + "'.");
+
         String[] msgArgs = cMsg.split(" ");
-        String actionName = msgArgs[0].substring(1); // Turn "/nick " into "nick"
+        String actionName = actionName(cMsg);
         msgArgs[0] = actionName;
 
         // Find action
-        BiFunction<String, String[], BiFunction<Server, User, String>> action = get(actionName);
+        BiFunction<String, String[], BiFunction<Server, User, Reply>> action = get(actionName);
 
         if (action != null)
             return action.apply(cMsg, msgArgs).apply(server, user);
         else
-            return "Control message \"" + actionName + "\" was not recognized.";
+            return Reply.message("Control message \"" + actionName + "\" was not recognized.");
+
+    }
+
+    /**
+     * Take in a control message that carries a request ID.
+     * The reply is always a receipt, headed by the request ID, so the client can match it to its request
+     * without waiting for one reply before sending the next request.
+     * For example, [#12, OK, nick, Name1] with the text "SERVER: Name successfully set to Name1"
+     * @param user user making the request
+     * @param requestId request ID chosen by the client, or null for none
+     * @param cMsg control message
+     * @return reply to write to the user
+     */
+    public Reply processAction(User user, String requestId, String cMsg) {
+        Reply reply = processAction(user, cMsg);
+        if (requestId == null)
+            return reply;
+
+        // Replies that are not receipts are refusals or usage errors
+        if (!reply.isReceipt()) {
+            reply = Reply.no(actionName(cMsg), reply.getText());
+        }
+        return reply.withRequestId(requestId);
+    }
 
+    /**
+     * @param cMsg control message
+     * @return name of its action, e.g. "nick" for "/nick Name1", or "" if it is not a control message
+     */
+    public static String actionName(String cMsg) {
+        if (cMsg.isEmpty() || cMsg.charAt(0) != Server.CTRL_HEAD)
+            return "";
+        return cMsg.split(" ")[0].substring(1); // Turn "/nick " into "nick"
     }
 
 }
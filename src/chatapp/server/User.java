@@ -1,68 +1,132 @@
 package chatapp.server;
 
-import chatapp.client.Client;
+import chatapp.protocol.Frame;
+import chatapp.protocol.Protocol;
 
-import java.io.*;
-import java.net.Socket;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ProtocolException;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author Zicheng Gao
  */
 public class User extends Thread {
+    // Text is read and written in the platform charset, as the text client does
+    private static final Charset CHARSET = Charset.defaultCharset();
+
+    private static final AtomicLong nextConnectionId = new AtomicLong();
+
+    // Issued on connect and never reused, unlike names, which change and pass to whoever takes them next
+    private final long connectionId = nextConnectionId.incrementAndGet();
+
     private Server server;
-    private Socket socket;
-    private InputStreamReader streamIn;
-    private OutputStreamWriter streamOut;
+    private SocketChannel channel;
+
+    // Holds one byte while waiting for a message, so no pooled buffer is kept by an idle connection
+    private ByteBuffer header = ByteBuffer.allocate(1);
+
+    // Text protocol: bytes read past the end of the last message, borrowed from the pool. null when there are none.
+    private ByteBuffer inbound;
+
+    // Protocol.TEXT until the client negotiates otherwise
+    private int protocolVersion = Protocol.TEXT;
 
     private User correspondent;
 
     private String terminator = "\n";
+    private byte[] terminatorBytes = terminator.getBytes(CHARSET);
 
     private boolean active;
 
-    public User(Server server, Socket socket) {
+    public User(Server server, SocketChannel channel) {
         active = true;
         this.server = server;
-        this.socket = socket;
-        this.setName("GUEST" + socket.getInetAddress());
+        this.channel = channel;
+        this.setName("GUEST" + getInetAddress());
         // for nickname, use the thread Name field :)
     }
 
+    private InetAddress getInetAddress() {
+        return channel.socket().getInetAddress();
+    }
+
     // Thread run action
     @Override
     public void run() {
 
-        StringBuilder stringBuilder = new StringBuilder(64);
         try {
-            streamIn = new InputStreamReader(socket.getInputStream());
-            streamOut = new OutputStreamWriter(socket.getOutputStream());
-            server.log("CONNECT: @ " + socket.getInetAddress() + ":" + server.getPort());
-
-            try {
+            negotiate();
+            server.log("CONNECT: @ " + getInetAddress() + ":" + server.getPort() +
+                    " (protocol v" + protocolVersion + ")");
+
+            if (protocolVersion == Protocol.BINARY) {
+                while (active)
+                    process(readFrame());
+            } else {
                 while (active) {
-                    String message = read(stringBuilder);
+                    String message = read();
                     process(message);
                 }
-            } catch (SocketException e) {
-                handleSocketException(e);
+            }
+        } catch (EOFException e) {
+            server.log("DISCONNECT: User " + getName() + " @ " + getInetAddress() + ":" + channel.socket().getPort());
+        } catch (IOException e) {
+            handleSocketException(e);
+        } finally {
+            // However the loop ended, give back buffers and leave the server
+            if (inbound != null) {
+                server.getBufferPool().release(inbound);
+                inbound = null;
             }
 
             // disconnect - inform chatapp.server to inform correspondents
             disconnect();
 
-            socket.close();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error occurred while interacting with the socket!");
+                e.printStackTrace();
+            }
+        }
 
-        } catch (IOException e) {
-            System.err.println("Error occurred while interacting with the socket!");
-            e.printStackTrace();
+    }
+
+    // A binary client opens with MAGIC and its version. Anything else is the start of a text client's first message.
+    private void negotiate() throws IOException {
+        int first = readByte();
+        if (first != Protocol.MAGIC) {
+            inbound = server.getBufferPool().acquire(1);
+            inbound.put((byte) first);
+            return;
         }
 
+        int requested = readByte();
+        protocolVersion = Math.max(Protocol.TEXT, Math.min(requested, Protocol.VERSION));
+
+        write(ByteBuffer.wrap(new byte[]{(byte) Protocol.MAGIC, (byte) protocolVersion}));
+    }
+
+    // Blocks until a byte arrives
+    private int readByte() throws IOException {
+        header.clear();
+        if (channel.read(header) < 0)
+            throw new EOFException();
+        return header.get(0) & 0xFF;
     }
 
-    private void handleSocketException(SocketException e) {
-        String identifier = getName() +  " @ " + socket.getInetAddress() + ":" +  socket.getPort();
-        if (e.getMessage().equals("Connection reset") || e.getMessage().equals("Connection closed"))
+    private void handleSocketException(IOException e) {
+        String identifier = getName() +  " @ " + getInetAddress() + ":" +  channel.socket().getPort();
+        if (e.getMessage() != null && (e.getMessage().startsWith("Connection reset") || e.getMessage().equals("Connection closed")))
             server.log("DISCONNECT: User " + identifier);
         else
             System.err.println("DISCONNECT-ERROR: User " + identifier);
@@ -79,18 +143,26 @@ public class User extends Thread {
     }
 
     public void dropCorrespondent() {
-        getCorrespondent().write("OK" + Client.CONTROL_DELIMITER + "listen" + Client.END_OF_HEADER +
-                "SERVER: User '" + getName() + "' has disconnected.");
+        getCorrespondent().write(Reply.ok("listen", "SERVER: User '" + getName() + "' has disconnected."));
         getCorrespondent().setCorrespondent(null);
         setCorrespondent(null);
     }
 
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    public long getConnectionId() {
+        return connectionId;
+    }
+
     public String getTerminator() {
         return terminator;
     }
 
     public void setTerminator(String terminator) {
         this.terminator = terminator;
+        this.terminatorBytes = terminator.getBytes(CHARSET);
     }
 
     public User getCorrespondent() {
@@ -101,53 +173,273 @@ public class User extends Thread {
         this.correspondent = correspondent;
     }
 
-    // Take in and flush a StringBuilder to lessen memory overhead
-    private String read(StringBuilder stringBuilder) throws IOException {
-        stringBuilder.delete(0, stringBuilder.length());
+    // Read a frame into a borrowed buffer, which is given back as soon as the frame is decoded
+    private Frame readFrame() throws IOException {
+        int b = readByte();
+        // Timed from the first byte, so time spent idle is not counted
+        MessageReadEvent event = new MessageReadEvent();
+        event.begin();
+
+        int length = b & 0x7F;
+        for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+            if (shift > 28)
+                throw new ProtocolException("Varint is too long.");
+            b = readByte();
+            length |= (b & 0x7F) << shift;
+        }
+        if (length < 1 || length > Protocol.MAX_FRAME_LENGTH)
+            throw new ProtocolException("Invalid frame length " + length + ".");
 
-        // Read until termination
-        int c = streamIn.read();
-        stringBuilder.append((char)c);
-        while (c > 0 && !stringBuilder.toString().endsWith(getTerminator())) {
-             c = streamIn.read();
-             stringBuilder.append((char)c);
+        ByteBuffer body = server.getBufferPool().acquire(length);
+        try {
+            body.limit(length);
+            while (body.hasRemaining())
+                if (channel.read(body) < 0)
+                    throw new EOFException();
+            body.flip();
+            Frame frame = Frame.readBody(body);
+            commitRead(event, length);
+            return frame;
+        } finally {
+            server.getBufferPool().release(body);
         }
+    }
 
-        int endPosition = stringBuilder.indexOf(getTerminator());
+    // Read until termination. Bytes past the terminator are kept for the next message.
+    private String read() throws IOException {
+        if (inbound == null) {
+            int first = readByte();
+            inbound = server.getBufferPool().acquire(1);
+            inbound.put((byte) first);
+        }
+        MessageReadEvent event = new MessageReadEvent();
+        event.begin();
+
+        int scanFrom = 0;
+        int endPosition;
+        while ((endPosition = indexOf(inbound, terminatorBytes, scanFrom)) < 0) {
+            scanFrom = Math.max(0, inbound.position() - terminatorBytes.length + 1);
+            if (!inbound.hasRemaining()) {
+                if (inbound.capacity() >= server.getBufferPool().getMaxSize())
+                    throw new ProtocolException("Message exceeds maximum length.");
+                inbound = server.getBufferPool().grow(inbound);
+            }
+            if (channel.read(inbound) < 0)
+                throw new EOFException();
+        }
 
-        if (endPosition != -1)
-            stringBuilder.delete(endPosition, stringBuilder.length());
+        // Decode the message, then drop it and its terminator
+        inbound.flip();
+        ByteBuffer message = inbound.duplicate();
+        message.limit(endPosition);
+        String msg = CHARSET.decode(message).toString();
+        inbound.position(endPosition + terminatorBytes.length);
+        inbound.compact();
+
+        if (inbound.position() == 0) {
+            server.getBufferPool().release(inbound);
+            inbound = null;
+        }
+        commitRead(event, endPosition + terminatorBytes.length);
+        return msg;
+    }
 
-        return stringBuilder.toString();
+    // Every message read starts a new trace
+    private void commitRead(MessageReadEvent event, int bytes) {
+        event.end();
+        long correlationId = MessageTrace.begin();
+        if (event.shouldCommit()) {
+            event.correlationId = correlationId;
+            event.user = getName();
+            event.protocolVersion = protocolVersion;
+            event.bytes = bytes;
+            event.commit();
+        }
     }
 
+    // Position of target in buffer[from, position), or -1
+    private static int indexOf(ByteBuffer buffer, byte[] target, int from) {
+        int last = buffer.position() - target.length;
+        outer:
+        for (int i = from; i <= last; i++) {
+            for (int j = 0; j < target.length; j++)
+                if (buffer.get(i + j) != target[j])
+                    continue outer;
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Write a plain message produced by the server.
+     * @param msg server message
+     */
     public synchronized void write(String msg) {
+        write(Reply.message(msg));
+    }
+
+    /**
+     * Write a reply produced by the server. Receipts keep their header fields apart on the binary protocol.
+     * @param reply server reply
+     */
+    public synchronized void write(Reply reply) {
+        if (protocolVersion == Protocol.BINARY)
+            write(reply.toText(), reply.toFrame(), false);
+        else
+            write(reply.toText(), null, false);
+    }
+
+    /**
+     * Write chat relayed from another user. Never interpreted as a receipt by binary clients.
+     * @param msg chat line
+     * @return whether the line was written
+     */
+    public synchronized boolean relay(String msg) {
+        if (protocolVersion == Protocol.BINARY)
+            return write(msg, Frame.chat(msg), true);
+        else
+            return write(msg, null, true);
+    }
+
+    // Encode into a borrowed buffer, which is given back once the socket has taken it all
+    private boolean write(String msg, Frame frame, boolean relayed) {
+        BufferPool pool = server.getBufferPool();
+        ByteBuffer buffer = null;
+        int bytes = 0;
+        MessageWriteEvent event = new MessageWriteEvent();
+        event.begin();
         try {
             server.log("TO " + getName() + ": \"" + msg + "\"");
-            streamOut.write(msg + getTerminator());
-            streamOut.flush();
-        } catch (SocketException e) {
-            handleSocketException(e);
+            if (frame != null) {
+                // Relayed chat gains the sender's name, so it can outgrow the frame the sender sent
+                int length = frame.encodedLength();
+                if (length > pool.getMaxSize())
+                    throw new ProtocolException("Frame of " + length + " bytes exceeds maximum length.");
+                buffer = pool.acquire(length);
+                frame.write(buffer);
+                bytes = writeOut(buffer);
+            } else {
+                // Text has no length limit, so it is encoded a buffer at a time, writing each out when full
+                CharBuffer text = CharBuffer.wrap(msg + getTerminator());
+                CharsetEncoder encoder = CHARSET.newEncoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+                buffer = pool.acquire(Math.min(text.remaining(), pool.getMaxSize()));
+                while (encoder.encode(text, buffer, true).isOverflow())
+                    bytes += writeOut(buffer);
+                while (encoder.flush(buffer).isOverflow())
+                    bytes += writeOut(buffer);
+                bytes += writeOut(buffer);
+            }
+
+            event.end();
+            if (event.shouldCommit()) {
+                event.correlationId = MessageTrace.current();
+                event.user = getName();
+                event.relayed = relayed;
+                event.bytes = bytes;
+                event.commit();
+            }
+            return true;
+        } catch (ProtocolException e) {
+            // Nothing was written, so the connection is still good
+            server.log("NOT SENT TO " + getName() + ": " + e.getMessage());
+            return false;
         } catch (IOException e) {
-            System.err.println("An error occurred while writing to the socket for user " + getName());
-            e.printStackTrace();
+            if (e instanceof SocketException)
+                handleSocketException(e);
+            else {
+                System.err.println("An error occurred while writing to the socket for user " + getName());
+                e.printStackTrace();
+            }
+            return false;
+        } finally {
+            if (buffer != null)
+                pool.release(buffer);
         }
     }
 
+    // Write out what has been put in the buffer, leaving it cleared for more
+    private int writeOut(ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        int bytes = buffer.remaining();
+        write(buffer);
+        buffer.clear();
+        return bytes;
+    }
+
+    private synchronized void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
     private synchronized void process(String msg) {
         server.log("FROM " + getName() + ": \"" + msg + "\"");
 
-        if (msg.charAt(0) == Server.CTRL_HEAD)
-            write(server.getActions().processAction(this, msg));
-        else {// normal message
-            if (getCorrespondent() != null)
-                getCorrespondent().write(getName() + ": " + msg);
-            else
-                write("SERVER: You are not chatting with anyone.");
+        // Control messages may be prefixed by a request ID header, e.g. "#12\u0002/nick Name1"
+        String requestId = null;
+        if (msg.startsWith(Protocol.REQUEST_ID_HEAD)) {
+            int headerEnd = msg.indexOf(Protocol.END_OF_HEADER);
+            if (headerEnd > 0 && msg.startsWith(String.valueOf(Server.CTRL_HEAD), headerEnd + 1)) {
+                requestId = msg.substring(0, headerEnd);
+                msg = msg.substring(headerEnd + 1);
+            }
+        }
 
+        if (msg.length() > 0 && msg.charAt(0) == Server.CTRL_HEAD)
+            processControl(requestId, msg);
+        else
+            processChat(msg);
+    }
+
+    // Binary frames say what they are, so chat starting with '/' is still chat
+    private synchronized void process(Frame frame) {
+        server.log("FROM " + getName() + ": " + frame);
+
+        switch (frame.getOpcode()) {
+            case Protocol.CONTROL:
+                // [command] or [request ID, command]
+                String[] fields = frame.getFields();
+                processControl(fields.length > 1 ? fields[0] : null, frame.getText());
+                break;
+            case Protocol.CHAT:
+                processChat(frame.getText());
+                break;
+            default:
+                write("SERVER: Unexpected frame type " + frame.getOpcode() + ".");
         }
+    }
+
+    private void processControl(String requestId, String msg) {
+        MessageDispatchEvent event = new MessageDispatchEvent();
+        event.begin();
+        write(server.getActions().processAction(this, requestId, msg));
+        commitDispatch(event, msg);
+    }
 
+    private void processChat(String msg) {
+        MessageDispatchEvent event = new MessageDispatchEvent();
+        event.begin();
+        User target = getCorrespondent();
+        if (target != null) {
+            if (target.relay(getName() + ": " + msg))
+                server.getHistory().add(this, target, msg);
+            else
+                write("SERVER: Your message could not be delivered to " + target.getName() + ".");
+        } else
+            write("SERVER: You are not chatting with anyone.");
+        commitDispatch(event, null);
+    }
 
+    // Event fields are only filled in when a recording wants them
+    private void commitDispatch(MessageDispatchEvent event, String controlMsg) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.correlationId = MessageTrace.current();
+            event.user = getName();
+            event.action = controlMsg != null ? ServerActions.actionName(controlMsg) : "chat";
+            event.commit();
+        }
     }
 
 }
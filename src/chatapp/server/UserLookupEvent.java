@@ -0,0 +1,24 @@
+package chatapp.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A name was looked up among the server's named users.
+ * @author Zicheng Gao
+ */
+@Name("chatapp.UserLookup")
+@Label("User Lookup")
+@Category({"Chat App", "Server"})
+class UserLookupEvent extends Event {
+    @Label("Correlation ID")
+    long correlationId;
+
+    @Label("Name")
+    String name;
+
+    @Label("Found")
+    boolean found;
+}